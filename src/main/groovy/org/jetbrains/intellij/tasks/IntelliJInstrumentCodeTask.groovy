@@ -3,14 +3,35 @@ package org.jetbrains.intellij.tasks
 import org.apache.tools.ant.BuildException
 import org.gradle.api.file.FileCollection
 import org.gradle.api.file.FileTree
+import org.gradle.api.file.FileVisitDetails
 import org.gradle.api.internal.ConventionTask
 import org.gradle.api.tasks.*
+import org.gradle.api.tasks.incremental.IncrementalTaskInputs
 import org.jetbrains.annotations.NotNull
+import org.jetbrains.annotations.Nullable
 import org.jetbrains.intellij.dependency.IdeaDependency
 
+import java.util.regex.Pattern
+
 class IntelliJInstrumentCodeTask extends ConventionTask {
     private static final String FILTER_ANNOTATION_REGEXP_CLASS = 'com.intellij.ant.ClassFilterAnnotationRegexp'
     private static final LOADER_REF = "java2.loader"
+    private static final String FORMS_INDEX_FILE = 'forms.index'
+    private static final Pattern BIND_TO_CLASS_PATTERN = Pattern.compile('bind-to-class="([^"]+)"')
+    private static final Pattern NESTED_FORM_PATTERN = Pattern.compile('form-file="([^"]+)"')
+
+    // Javac2 loaders survive between builds in the same daemon, keyed by the jars and their stamps
+    private static final int MAX_CACHED_LOADERS = 4
+    private static final Map<String, Javac2Loader> JAVAC2_LOADERS = new LinkedHashMap<String, Javac2Loader>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Javac2Loader> eldest) {
+            if (size() > MAX_CACHED_LOADERS) {
+                eldest.value.evict()
+                return true
+            }
+            return false
+        }
+    }
 
     SourceSet sourceSet
 
@@ -25,10 +46,15 @@ class IntelliJInstrumentCodeTask extends ConventionTask {
     @InputFiles
     @SkipWhenEmpty
     FileTree getOriginalClasses() {
+        return getOriginalClassesDirs().asFileTree
+    }
+
+    @Internal
+    FileCollection getOriginalClassesDirs() {
         def output = sourceSet.output
         return output.hasProperty("classesDirs") ?
-                project.files(output.classesDirs.from).asFileTree :
-                project.fileTree(output.classesDir)
+                project.files(output.classesDirs.from) :
+                project.files(output.classesDir)
     }
 
     @InputFile
@@ -51,10 +77,8 @@ class IntelliJInstrumentCodeTask extends ConventionTask {
 
     @SuppressWarnings("GroovyUnusedDeclaration")
     @TaskAction
-    void instrumentClasses() {
+    void instrumentClasses(IncrementalTaskInputs inputs) {
         def outputDir = getOutputDir()
-        copyOriginalClasses(outputDir)
-
         def ideaDependency = getIdeaDependency()
         def classpath = project.files(
                 getJavac2(),
@@ -62,16 +86,183 @@ class IntelliJInstrumentCodeTask extends ConventionTask {
                 "$ideaDependency.classes/lib/asm-all.jar",
                 "$ideaDependency.classes/lib/jgoodies-forms.jar")
 
-        ant.taskdef(name: 'instrumentIdeaExtensions',
-                classpath: classpath.asPath,
-                loaderref: LOADER_REF,
-                classname: 'com.intellij.ant.InstrumentIdeaExtensions')
+        def loader = acquireJavac2Loader(ant.project.class.classLoader, classpath)
+        try {
+            ant.project.addReference(LOADER_REF, loader.classLoader)
+            ant.taskdef(name: 'instrumentIdeaExtensions',
+                    classpath: classpath.asPath,
+                    loaderref: LOADER_REF,
+                    classname: 'com.intellij.ant.InstrumentIdeaExtensions')
 
-        logger.info("Compiling forms and instrumenting code with nullability preconditions")
-        boolean instrumentNotNull = prepareNotNullInstrumenting(classpath)
-        instrumentCode(getSourceDirs(), outputDir, instrumentNotNull)
+            logger.info("Compiling forms and instrumenting code with nullability preconditions")
+            boolean instrumentNotNull = prepareNotNullInstrumenting(classpath)
+            if (!inputs.incremental || !instrumentChangedClasses(inputs, outputDir, instrumentNotNull)) {
+                instrumentAllClasses(outputDir, instrumentNotNull)
+            }
+        } finally {
+            releaseJavac2Loader(loader)
+        }
     }
 
+    private void instrumentAllClasses(@NotNull File outputDir, boolean instrumentNotNull) {
+        def indexFile = getFormsIndexFile()
+        indexFile.delete()
+        copyOriginalClasses(outputDir)
+        instrumentCode(getSourceDirs(), outputDir, sourceSet.compileClasspath, null, instrumentNotNull)
+
+        def forms = new HashMap<String, FormInfo>()
+        getSourceDirs().files.each { root ->
+            project.fileTree(root).include('**/*.form').visit { FileVisitDetails details ->
+                if (!details.directory) {
+                    forms[details.relativePath.pathString] = FormInfo.parse(details.file)
+                }
+            }
+        }
+        writeFormsIndex(indexFile, forms)
+    }
+
+    /**
+     * Copies and instruments only classes affected by changed class files and forms.
+     *
+     * @return false if changes cannot be applied incrementally and the full instrumentation is required
+     */
+    private boolean instrumentChangedClasses(@NotNull IncrementalTaskInputs inputs, @NotNull File outputDir,
+                                             boolean instrumentNotNull) {
+        def indexFile = getFormsIndexFile()
+        def forms = readFormsIndex(indexFile)
+        if (forms == null) {
+            logger.info("Forms index is missing or malformed, instrumenting all classes")
+            return false
+        }
+        indexFile.delete()
+
+        def javac2 = getJavac2()
+        def classesDirs = getOriginalClassesDirs().files
+        def sourceDirs = getSourceDirs()
+        def changedClasses = new HashSet<String>()
+        def changedForms = new HashMap<String, File>()
+        def fullInstrumentationReason = null
+
+        def boundClasses = forms.values().collect { it.classFilePath }.findAll { it != null } as Set
+
+        inputs.outOfDate { change ->
+            def file = change.file
+            if (file.isDirectory()) {
+                return
+            }
+            def classPath = relativePath(classesDirs, file)
+            def sourcePath = relativePath(sourceDirs.files, file)
+            if (file == javac2) {
+                fullInstrumentationReason = "Javac2 was changed"
+            } else if (classPath != null) {
+                changedClasses.add(classPath)
+            } else if (sourcePath == null) {
+                fullInstrumentationReason = "Unknown input $file was changed"
+            } else if (file.name.endsWith('.form')) {
+                changedForms[sourcePath] = file
+            }
+        }
+        inputs.removed { change ->
+            def file = change.file
+            def classPath = relativePath(classesDirs, file)
+            def sourcePath = relativePath(sourceDirs.files, file)
+            if (file == javac2) {
+                fullInstrumentationReason = "Javac2 was removed"
+            } else if (classPath != null) {
+                def output = new File(outputDir, classPath)
+                if (boundClasses.contains(classPath)) {
+                    // full instrumentation reports the missing class to bind
+                    fullInstrumentationReason = "Class $classPath bound to a form was removed"
+                } else if (!output.isDirectory()) {
+                    output.delete()
+                }
+            } else if (sourcePath == null) {
+                fullInstrumentationReason = "Unknown input $file was removed"
+            } else if (file.name.endsWith('.form')) {
+                fullInstrumentationReason = "Form $file was removed"
+            }
+        }
+        if (fullInstrumentationReason != null) {
+            logger.info("$fullInstrumentationReason, instrumenting all classes")
+            return false
+        }
+
+        // classes bound to changed forms before the change lose their form code
+        def classesToInstrument = new HashSet<String>(changedClasses)
+        def unboundClasses = new HashSet<String>()
+        for (def entry : changedForms) {
+            def info = FormInfo.parse(entry.value)
+            if (info.boundClass == null) {
+                logger.info("Cannot find bound class of $entry.value, instrumenting all classes")
+                return false
+            }
+            def previous = forms.put(entry.key, info)
+            if (previous?.boundClass != null && previous.boundClass != info.boundClass) {
+                unboundClasses.add(previous.classFilePath)
+            }
+        }
+
+        def formsToApply = new HashSet<String>(changedForms.keySet())
+        forms.each { path, info ->
+            if (changedClasses.contains(info.classFilePath)) {
+                formsToApply.add(path)
+            }
+        }
+        // forms nesting changed forms have to be recompiled as well
+        def nestingForms = new HashMap<String, Set<String>>()
+        forms.each { path, info ->
+            info.nestedForms.each { nestingForms.get(it, new HashSet<String>()).add(path) }
+        }
+        def queue = new ArrayDeque<String>(formsToApply)
+        while (!queue.isEmpty()) {
+            nestingForms[queue.poll()]?.each {
+                if (formsToApply.add(it)) {
+                    queue.add(it)
+                }
+            }
+        }
+        for (def path : formsToApply) {
+            if (forms[path].boundClass == null) {
+                logger.info("Cannot find bound class of $path, instrumenting all classes")
+                return false
+            }
+            classesToInstrument.add(forms[path].classFilePath)
+        }
+
+        if (classesToInstrument.isEmpty() && unboundClasses.isEmpty()) {
+            writeFormsIndex(indexFile, forms)
+            return true
+        }
+
+        def stagingDir = new File(getTemporaryDir(), 'incremental')
+        stagingDir.deleteDir()
+        stagingDir.mkdirs()
+        for (def path : classesToInstrument + unboundClasses) {
+            def original = classesDirs.collect { new File(it, path) }.find { it.exists() }
+            if (original == null) {
+                if (classesToInstrument.contains(path)) {
+                    logger.info("Cannot find original class $path, instrumenting all classes")
+                    return false
+                }
+                // previously bound class was removed, its output is removed with it
+                continue
+            }
+            project.copy {
+                from original
+                into new File(stagingDir, path).parentFile
+            }
+        }
+
+        logger.info("Instrumenting ${classesToInstrument.size()} changed classes and ${formsToApply.size()} forms")
+        instrumentCode(sourceDirs, stagingDir, project.files(outputDir, sourceSet.compileClasspath), formsToApply,
+                instrumentNotNull)
+        project.copy {
+            from stagingDir
+            into outputDir
+        }
+        writeFormsIndex(indexFile, forms)
+        return true
+    }
 
     private void copyOriginalClasses(@NotNull File outputDir) {
         outputDir.deleteDir()
@@ -98,20 +289,167 @@ class IntelliJInstrumentCodeTask extends ConventionTask {
         return true
     }
 
-    private void instrumentCode(@NotNull FileCollection srcDirs, @NotNull File outputDir, boolean instrumentNotNull) {
+    /**
+     * @param forms paths of forms relative to source dirs to compile, all forms are compiled if null
+     */
+    private void instrumentCode(@NotNull FileCollection srcDirs, @NotNull File outputDir,
+                                @NotNull FileCollection classpath, @Nullable Collection<String> forms,
+                                boolean instrumentNotNull) {
         def headlessOldValue = System.setProperty('java.awt.headless', 'true')
-        ant.instrumentIdeaExtensions(srcdir: srcDirs.asPath,
-                destdir: outputDir, classpath: sourceSet.compileClasspath.asPath,
-                includeantruntime: false, instrumentNotNull: instrumentNotNull) {
-            if (instrumentNotNull) {
-                ant.skip(pattern: 'kotlin/Metadata')
+        try {
+            ant.instrumentIdeaExtensions(srcdir: srcDirs.asPath,
+                    destdir: outputDir, classpath: classpath.asPath,
+                    includeantruntime: false, instrumentNotNull: instrumentNotNull) {
+                if (forms != null) {
+                    if (forms.isEmpty()) {
+                        ant.exclude(name: '**/*')
+                    } else {
+                        forms.each { ant.include(name: it) }
+                    }
+                }
+                if (instrumentNotNull) {
+                    ant.skip(pattern: 'kotlin/Metadata')
+                }
+            }
+        } finally {
+            if (headlessOldValue != null) {
+                System.setProperty('java.awt.headless', headlessOldValue)
+            } else {
+                System.clearProperty('java.awt.headless')
+            }
+        }
+    }
+
+    private File getFormsIndexFile() {
+        return new File(getTemporaryDir(), FORMS_INDEX_FILE)
+    }
+
+    /**
+     * Reads forms index written by the previous run: URL-encoded form path relative to the source dirs,
+     * its bound class and nested forms separated by tabs per line, followed by the number of forms.
+     *
+     * @return null if the previous run did not finish successfully or the index is malformed
+     */
+    @Nullable
+    private static Map<String, FormInfo> readFormsIndex(@NotNull File indexFile) {
+        if (!indexFile.exists()) {
+            return null
+        }
+        try {
+            def lines = indexFile.readLines('UTF-8')
+            if (lines.isEmpty() || lines.last() != "#${lines.size() - 1}") {
+                return null
+            }
+            def result = new HashMap<String, FormInfo>()
+            for (def line : lines.subList(0, lines.size() - 1)) {
+                def parts = line.split('\t', -1).collect { URLDecoder.decode(it, 'UTF-8') }
+                if (parts.size() < 2 || parts[0].empty) {
+                    return null
+                }
+                result[parts[0]] = new FormInfo(parts[1].empty ? null : parts[1], parts.subList(2, parts.size()))
+            }
+            return result
+        } catch (IOException | IllegalArgumentException ignored) {
+            return null
+        }
+    }
+
+    private static void writeFormsIndex(@NotNull File indexFile, @NotNull Map<String, FormInfo> forms) {
+        indexFile.withWriter('UTF-8') { writer ->
+            forms.each { path, info ->
+                def fields = [path, info.boundClass ?: ''] + info.nestedForms
+                writer.writeLine(fields.collect { URLEncoder.encode(it, 'UTF-8') }.join('\t'))
+            }
+            writer.writeLine("#${forms.size()}")
+        }
+    }
+
+    @Nullable
+    private static String relativePath(@NotNull Collection<File> roots, @NotNull File file) {
+        def root = roots.find { file.absolutePath.startsWith(it.absolutePath + File.separator) }
+        if (root == null) {
+            return null
+        }
+        return root.toPath().relativize(file.toPath()).toString().replace(File.separatorChar, '/' as char)
+    }
+
+    @NotNull
+    private Javac2Loader acquireJavac2Loader(@NotNull ClassLoader parent, @NotNull FileCollection classpath) {
+        def path = classpath.asPath
+        def key = classpath.files.collect { "$it.absolutePath:${it.length()}:${it.lastModified()}" }.join(File.pathSeparator)
+        synchronized (JAVAC2_LOADERS) {
+            def loader = JAVAC2_LOADERS.remove(key)
+            // jars updated in place must not stay open in a stale loader
+            def stale = JAVAC2_LOADERS.findAll { it.value.classpath == path }
+            stale.each { JAVAC2_LOADERS.remove(it.key); it.value.evict() }
+            if (loader != null && !loader.classLoader.parent.is(parent)) {
+                loader.evict()
+                loader = null
+            }
+            if (loader == null) {
+                logger.info("Creating Javac2 class loader")
+                def urls = classpath.files.collect { it.toURI().toURL() } as URL[]
+                loader = new Javac2Loader(path, new URLClassLoader(urls, parent))
+            } else {
+                logger.info("Reusing cached Javac2 class loader")
             }
+            // re-inserted to keep the most recently used loaders at the end
+            JAVAC2_LOADERS[key] = loader
+            loader.users++
+            return loader
+        }
+    }
+
+    private static void releaseJavac2Loader(@NotNull Javac2Loader loader) {
+        synchronized (JAVAC2_LOADERS) {
+            loader.users--
+            if (loader.evicted && loader.users == 0) {
+                loader.classLoader.close()
+            }
+        }
+    }
+
+    private static class Javac2Loader {
+        final String classpath
+        final URLClassLoader classLoader
+        int users
+        boolean evicted
+
+        Javac2Loader(@NotNull String classpath, @NotNull URLClassLoader classLoader) {
+            this.classpath = classpath
+            this.classLoader = classLoader
         }
-        if (headlessOldValue != null) {
-            System.setProperty('java.awt.headless', headlessOldValue)
-        } else {
-            System.clearProperty('java.awt.headless')
+
+        void evict() {
+            evicted = true
+            if (users == 0) {
+                classLoader.close()
+            }
         }
     }
 
+    private static class FormInfo {
+        final String boundClass
+        final List<String> nestedForms
+
+        FormInfo(@Nullable String boundClass, @NotNull List<String> nestedForms) {
+            this.boundClass = boundClass
+            this.nestedForms = nestedForms
+        }
+
+        static FormInfo parse(@NotNull File form) {
+            def text = form.text
+            def bindMatcher = BIND_TO_CLASS_PATTERN.matcher(text)
+            def nestedForms = []
+            def nestedMatcher = NESTED_FORM_PATTERN.matcher(text)
+            while (nestedMatcher.find()) {
+                nestedForms.add(nestedMatcher.group(1))
+            }
+            return new FormInfo(bindMatcher.find() ? bindMatcher.group(1) : null, nestedForms)
+        }
+
+        String getClassFilePath() {
+            return boundClass != null ? boundClass.replace('.', '/') + '.class' : null
+        }
+    }
 }
@@ -100,6 +100,144 @@ class IntelliJPluginSpec extends IntelliJPluginSpecBase {
         result.task(":$JavaPlugin.CLASSES_TASK_NAME").outcome == TaskOutcome.UP_TO_DATE
     }
 
+    def 'instrument only changed classes'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeJavaFile()
+        file('src/main/java/Other.java') << 'class Other {}'
+
+        when:
+        build('buildSourceSet')
+        file('src/main/java/App.java') << """
+class Another {
+    void foo(@org.jetbrains.annotations.NotNull String s) {}
+}"""
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('Instrumenting 1 changed classes and 0 forms')
+        new File(instrumentedDirectory, 'Other.class').exists()
+        instrumentedClassText('Another.class').contains('@NotNull parameter')
+        instrumentedClassText('App.class').contains('@NotNull parameter')
+    }
+
+    def 'remove instrumented classes of removed sources'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeJavaFile()
+        file('src/main/java/Other.java') << 'class Other {}'
+
+        when:
+        build('buildSourceSet')
+        new File(dir.root, 'src/main/java/Other.java').delete()
+        build('buildSourceSet')
+
+        then:
+        !new File(instrumentedDirectory, 'Other.class').exists()
+        instrumentedClassText('App.class').contains('@NotNull parameter')
+    }
+
+    def 'instrument class bound to changed form'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeFormClass('FormApp')
+        def form = writeJavaForm('FormApp')
+
+        when:
+        build('buildSourceSet')
+        form.text = form.text.replace('top="0"', 'top="1"')
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('Instrumenting 1 changed classes and 1 forms')
+        instrumentedClassText('pack/FormApp.class').contains('$$$setupUI$$$')
+    }
+
+    def 'reinstrument class previously bound to changed form'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeFormClass('FormApp')
+        writeFormClass('OtherFormApp')
+        def form = writeJavaForm('FormApp')
+
+        when:
+        build('buildSourceSet')
+        form.text = form.text.replace('pack.FormApp', 'pack.OtherFormApp')
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('Instrumenting 1 changed classes and 1 forms')
+        instrumentedClassText('pack/OtherFormApp.class').contains('$$$setupUI$$$')
+        !instrumentedClassText('pack/FormApp.class').contains('$$$setupUI$$$')
+    }
+
+    def 'instrument class bound to form that gained binding'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeFormClass('FormApp')
+        def form = writeJavaForm('FormApp')
+        form.text = form.text.replace(' bind-to-class="pack.FormApp"', '')
+
+        when:
+        build('buildSourceSet')
+        form.text = form.text.replace('version="1"', 'version="1" bind-to-class="pack.FormApp"')
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('Instrumenting 1 changed classes and 1 forms')
+        instrumentedClassText('pack/FormApp.class').contains('$$$setupUI$$$')
+    }
+
+    def 'instrument classes in new packages'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeJavaFile()
+
+        when:
+        build('buildSourceSet')
+        file('src/main/java/newpack/Fresh.java') << """package newpack;
+class Fresh {
+    void foo(@org.jetbrains.annotations.NotNull String s) {}
+}"""
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('Instrumenting 1 changed classes and 0 forms')
+        instrumentedClassText('newpack/Fresh.class').contains('@NotNull parameter')
+        !new File(instrumentedDirectory, 'Fresh.class').exists()
+        instrumentedClassText('App.class').contains('@NotNull parameter')
+    }
+
+    def 'reuse javac2 class loader between builds'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeJavaFile()
+
+        when:
+        build('buildSourceSet')
+        file('src/main/java/Other.java') << 'class Other {}'
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('Reusing cached Javac2 class loader')
+    }
+
+    def 'instrument all classes when form is removed'() {
+        given:
+        buildFile << 'intellij { instrumentCode = true }'
+        writeFormClass('FormApp')
+        def form = writeJavaForm('FormApp')
+
+        when:
+        build('buildSourceSet')
+        form.delete()
+        def result = build('buildSourceSet', '--info')
+
+        then:
+        result.output.contains('was removed, instrumenting all classes')
+        !instrumentedClassText('pack/FormApp.class').contains('$$$setupUI$$$')
+    }
+
     def 'patch test tasks'() {
         given:
         writeTestFile()
@@ -321,4 +459,37 @@ intellij {
             result
         }
     }
+
+    private File getInstrumentedDirectory() {
+        return new File(buildDirectory, 'classes/main-instrumented')
+    }
+
+    private String instrumentedClassText(String path) {
+        return new File(instrumentedDirectory, path).getText('ISO-8859-1')
+    }
+
+    private File writeFormClass(String className) {
+        file("src/main/java/pack/${className}.java") << """package pack;
+import javax.swing.JPanel;
+class $className {
+    private JPanel panel;
+}
+"""
+    }
+
+    private File writeJavaForm(String className) {
+        file("src/main/java/pack/${className}.form") << """<?xml version="1.0" encoding="UTF-8"?>
+<form xmlns="http://www.intellij.com/uidesigner/form/" version="1" bind-to-class="pack.$className">
+  <grid id="27dc6" binding="panel" layout-manager="GridLayoutManager" row-count="1" column-count="1" same-size-horizontally="false" same-size-vertically="false" hgap="-1" vgap="-1">
+    <margin top="0" left="0" bottom="0" right="0"/>
+    <constraints>
+      <xy x="20" y="20" width="500" height="400"/>
+    </constraints>
+    <properties/>
+    <border type="none"/>
+    <children/>
+  </grid>
+</form>
+"""
+    }
 }